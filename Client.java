@@ -1,5 +1,10 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
@@ -10,6 +15,19 @@ public class Client {
     private JFrame frame = new JFrame("Chat Client");
     private JTextField textField = new JTextField(40);
     private JTextArea messageArea = new JTextArea(8, 40);
+    // Run with -Dchat.compress=true to deflate traffic, e.g. on slow links
+    private boolean compress = Boolean.getBoolean("chat.compress");
+    // Run with -Dchat.multicast=true to receive room messages from the server's multicast group (same LAN only)
+    private boolean multicast = Boolean.getBoolean("chat.multicast");
+    // Run with -Dchat.room=<id> to join a room other than the server's default one
+    private String room = System.getProperty("chat.room");
+    // Server run and room whose datagrams are ours, from the MULTICAST reply and MULTICAST_FROM;
+    // the group carries every room and may carry other servers or forged datagrams
+    private String multicastSession;
+    private String multicastRoom;
+    // Next multicast sequence number expected (0 until MULTICAST_FROM), and skipped ones still being fetched
+    private long nextSequence;
+    private Set<Long> missingSequences = new HashSet<>();
 
     public Client(String serverAddress) {
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -21,6 +39,7 @@ public class Client {
         frame.add(new JScrollPane(messageArea), BorderLayout.CENTER);
         frame.pack();
 
+        // Sent as typed, so /roster asks for the member list and // starts a line with a slash
         textField.addActionListener(e -> {
             out.println(textField.getText());
             textField.setText("");
@@ -31,6 +50,8 @@ public class Client {
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             out = new PrintWriter(socket.getOutputStream(), true);
 
+            // The server asks again, without expecting the options, when a name is reserved
+            boolean optionsSent = false;
             while (true) {
                 String line = in.readLine();
                 if (line == null) break;
@@ -38,17 +59,84 @@ public class Client {
                 if (line.startsWith("SUBMIT_NAME")) {
                     String name = JOptionPane.showInputDialog(
                         frame,
-                        "Choose a username:",
+                        optionsSent ? "That name is reserved, choose another username:" : "Choose a username:",
                         "Username Selection",
                         JOptionPane.PLAIN_MESSAGE
                     );
                     if (name == null) return;
+                    if (optionsSent) {
+                        out.println(name);
+                        continue;
+                    }
+                    optionsSent = true;
+                    if (compress) {
+                        out.println("COMPRESS deflate");
+                        // The server sends nothing after COMPRESS_OK until it has our name,
+                        // so no compressed bytes are stuck in the old reader's buffer
+                        if ("COMPRESS_OK".equals(in.readLine())) {
+                            // available() is overridden because the default always reports a ready
+                            // byte, which makes InputStreamReader block instead of returning the line
+                            in = new BufferedReader(new InputStreamReader(
+                                new InflaterInputStream(socket.getInputStream()) {
+                                    @Override
+                                    public int available() {
+                                        return 0;
+                                    }
+                                }));
+                            out = new PrintWriter(new DeflaterOutputStream(socket.getOutputStream(), true), true);
+                        }
+                    }
+                    if (room != null) {
+                        out.println("ROOM " + room);
+                    }
+                    if (multicast) {
+                        out.println("MULTICAST");
+                        String reply = in.readLine();
+                        // Joined before the name is sent, so nothing broadcast after our join is missed
+                        // "MULTICAST <group> <port> <session>"
+                        String[] group = reply != null ? reply.split(" ") : new String[0];
+                        if (group.length == 4 && group[0].equals("MULTICAST")) {
+                            try {
+                                multicastSession = group[3];
+                                listenForMulticast(group[1], Integer.parseInt(group[2]));
+                            } catch (NumberFormatException e) {
+                                messageArea.append("Bad multicast reply: " + reply + "\n");
+                            }
+                        }
+                    }
                     out.println(name);
+                } else if (line.startsWith("MULTICAST_FROM ")) {
+                    // "MULTICAST_FROM <room> <seq>"
+                    String[] start = line.split(" ");
+                    try {
+                        long first = Long.parseLong(start[2]);
+                        synchronized (this) {
+                            multicastRoom = start[1];
+                            nextSequence = first;
+                        }
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        messageArea.append("Bad multicast start: " + line + "\n");
+                    }
+                } else if (line.startsWith("RESENT ")) {
+                    deliverMulticast(line.substring(7));
+                } else if (line.startsWith("PING")) {
+                    out.println("/PONG");
+                    // Multicast clients are told the room's latest sequence number
+                    if (line.startsWith("PING ")) {
+                        try {
+                            catchUp(Long.parseLong(line.substring(5)));
+                        } catch (NumberFormatException e) {
+                            // Not ours to interpret; the PONG is all the server needs
+                        }
+                    }
+                } else if (line.startsWith("MEMBERS ")) {
+                    // Sent on join and in answer to a typed /roster
+                    messageArea.append("In this room: " + line.substring(8).replace(",", ", ") + "\n");
                 } else if (line.startsWith("NAME_ACCEPTED")) {
                     textField.setEditable(true);
                     frame.setTitle("Chat - " + line.substring(14));
                 } else {
-                    messageArea.append(line + "\n");
+                    showBroadcast(line);
                 }
             }
         } catch (IOException e) {
@@ -59,6 +147,97 @@ public class Client {
         }
     }
 
+    private void showBroadcast(String line) {
+        if (line.startsWith("PRESENCE ")) {
+            messageArea.append(describePresence(line.substring(9)) + "\n");
+        } else {
+            messageArea.append(line + "\n");
+        }
+    }
+
+    private void listenForMulticast(String group, int port) throws IOException {
+        MulticastSocket socket = new MulticastSocket(port);
+        // e.g. -Dchat.multicast.if=lo when server and client share a machine
+        String networkInterface = System.getProperty("chat.multicast.if");
+        socket.joinGroup(new InetSocketAddress(InetAddress.getByName(group), port),
+            networkInterface != null ? NetworkInterface.getByName(networkInterface) : null);
+
+        Thread listener = new Thread(() -> {
+            byte[] buffer = new byte[65535];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    deliverDatagram(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                messageArea.append("Multicast error: " + e.getMessage() + "\n");
+            } finally {
+                socket.close();
+            }
+        });
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    // Datagrams are "<session> <room> <seq> <line>"; other servers' and other rooms' lines are dropped
+    private synchronized void deliverDatagram(String datagram) {
+        String[] parts = datagram.split(" ", 3);
+        if (parts.length < 3 || !parts[0].equals(multicastSession) || !parts[1].equals(multicastRoom)) return;
+        deliverMulticast(parts[2]);
+    }
+
+    // Asks for everything up to the server's latest sequence number that has not arrived,
+    // which recovers lost datagrams at the end of a burst
+    private synchronized void catchUp(long latest) {
+        if (nextSequence == 0 || latest < nextSequence) return;
+        for (long missing = Math.max(nextSequence, latest - 1023); missing <= latest; missing++) {
+            missingSequences.add(missing);
+        }
+        out.println("/RESEND " + Math.max(nextSequence, latest - 1023) + " " + latest);
+        nextSequence = latest + 1;
+    }
+
+    // Shows each "<seq> <line>" once, from either the group or a RESENT reply, and asks the
+    // server over TCP for any sequence numbers that were skipped
+    private synchronized void deliverMulticast(String entry) {
+        int space = entry.indexOf(' ');
+        if (space < 0 || nextSequence == 0) return;
+        long seq;
+        try {
+            seq = Long.parseLong(entry.substring(0, space));
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        if (seq >= nextSequence) {
+            if (seq > nextSequence) {
+                for (long missing = Math.max(nextSequence, seq - 1024); missing < seq; missing++) {
+                    missingSequences.add(missing);
+                }
+                out.println("/RESEND " + Math.max(nextSequence, seq - 1024) + " " + (seq - 1));
+            }
+            nextSequence = seq + 1;
+        } else if (!missingSequences.remove(seq)) {
+            return;
+        }
+        showBroadcast(entry.substring(space + 1));
+    }
+
+    // Turns a PRESENCE delta such as "+alice,+bob,-carol" into "2 joined, 1 left."
+    private static String describePresence(String delta) {
+        int joined = 0;
+        int left = 0;
+        for (String change : delta.split(",")) {
+            if (change.startsWith("+")) joined++;
+            else if (change.startsWith("-")) left++;
+        }
+        if (joined + left == 1) {
+            return delta.substring(1) + (joined == 1 ? " has joined the chat." : " has left the chat.");
+        }
+        return joined + " joined, " + left + " left.";
+    }
+
     public static void main(String[] args) {
         String serverAddress = JOptionPane.showInputDialog(
             null,
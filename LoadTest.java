@@ -0,0 +1,174 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Load generator for comparing Server's platform and virtual thread modes:
+//
+//   java Server                    (or: java Server --virtual-threads, on JDK 21+)
+//   java LoadTest localhost 5000 50
+//
+// Opens the requested number of connections from a single selector thread (answering PINGs
+// like a real client) and reports how many the server accepted. It then sends timed messages
+// from the first connection, within the server's rate limit, and reports how long each
+// broadcast took to reach every other connection. For memory per connection, compare the
+// heapUsedMb and threads fields of the server's stats line before and after the run.
+class LoadTest {
+    private static final long SETTLE_TIMEOUT_MILLIS = 30_000;
+    private static final long SEND_INTERVAL_MILLIS = 250;
+
+    private static class Connection {
+        final String name;
+        final SocketChannel channel;
+        final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        boolean accepted;
+
+        Connection(String name, SocketChannel channel) {
+            this.name = name;
+            this.channel = channel;
+        }
+    }
+
+    private final Selector selector = Selector.open();
+    private final List<Connection> connections = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private final List<Long> latencies = new ArrayList<>();
+    private int acceptedCount;
+    private int closedCount;
+
+    private LoadTest() throws IOException {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java LoadTest <host> <connections> <messages>");
+            return;
+        }
+        new LoadTest().run(new InetSocketAddress(args[0], 8888),
+                Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+    }
+
+    private void run(InetSocketAddress server, int target, int messages) throws IOException {
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < target; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open(server);
+                channel.configureBlocking(false);
+                Connection connection = new Connection("load" + i, channel);
+                channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+            } catch (IOException e) {
+                System.out.println("Connect failed after " + i + " connections: " + e.getMessage());
+                break;
+            }
+            // Keep handshakes moving so the server's accept backlog does not fill up
+            poll(0);
+        }
+
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MILLIS;
+        while (acceptedCount + closedCount < connections.size() && System.currentTimeMillis() < deadline) {
+            poll(100);
+        }
+        System.out.printf("Connections: %d requested, %d opened, %d accepted, %d closed, %.1fs%n",
+                target, connections.size(), acceptedCount, closedCount,
+                (System.nanoTime() - connectStart) / 1e9);
+        if (acceptedCount < 2) return;
+
+        Connection sender = connections.get(0);
+        for (int i = 0; i < messages; i++) {
+            send(sender, i + " " + System.nanoTime());
+            long next = System.currentTimeMillis() + SEND_INTERVAL_MILLIS;
+            while (System.currentTimeMillis() < next) {
+                poll(Math.max(1, next - System.currentTimeMillis()));
+            }
+        }
+
+        long expected = (long) messages * (acceptedCount - 1);
+        deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MILLIS;
+        while (latencies.size() < expected && System.currentTimeMillis() < deadline) {
+            poll(100);
+        }
+        report(expected);
+    }
+
+    private void report(long expected) {
+        System.out.println("Deliveries: " + latencies.size() + " of " + expected);
+        if (latencies.isEmpty()) return;
+
+        Collections.sort(latencies);
+        System.out.printf("Broadcast latency ms: p50=%.2f p99=%.2f max=%.2f%n",
+                percentile(0.50) / 1e6, percentile(0.99) / 1e6,
+                latencies.get(latencies.size() - 1) / 1e6);
+    }
+
+    private long percentile(double fraction) {
+        return latencies.get((int) Math.min(latencies.size() - 1, fraction * latencies.size()));
+    }
+
+    private void poll(long timeoutMillis) throws IOException {
+        if (timeoutMillis == 0) {
+            selector.selectNow();
+        } else {
+            selector.select(timeoutMillis);
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection connection = (Connection) key.attachment();
+            readLines(connection, key);
+        }
+    }
+
+    private void readLines(Connection connection, SelectionKey key) throws IOException {
+        readBuffer.clear();
+        int n;
+        try {
+            n = connection.channel.read(readBuffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n == -1) {
+            key.cancel();
+            connection.channel.close();
+            closedCount++;
+            return;
+        }
+
+        long now = System.nanoTime();
+        byte[] bytes = readBuffer.array();
+        for (int i = 0; i < n; i++) {
+            if (bytes[i] != '\n') {
+                connection.partial.write(bytes[i]);
+                continue;
+            }
+            String line = connection.partial.toString(StandardCharsets.UTF_8);
+            connection.partial.reset();
+            handle(connection, line, now);
+        }
+    }
+
+    private void handle(Connection connection, String line, long now) throws IOException {
+        if (line.equals("SUBMIT_NAME")) {
+            send(connection, connection.name);
+        } else if (line.startsWith("PING")) {
+            send(connection, "/PONG");
+        } else if (line.startsWith("NAME_ACCEPTED ")) {
+            connection.accepted = true;
+            acceptedCount++;
+        } else if (line.startsWith("load0: ") && connection != connections.get(0)) {
+            String[] parts = line.split(" ");
+            latencies.add(now - Long.parseLong(parts[2]));
+        }
+    }
+
+    // Lines are tiny, so spinning on a full send buffer is rare and short
+    private void send(Connection connection, String line) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (data.hasRemaining()) {
+            connection.channel.write(data);
+        }
+    }
+}
@@ -1,66 +1,638 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
  class Server {
     private static final int PORT = 8888;
-    private static HashSet<PrintWriter> clientWriters = new HashSet<>();
+    // Rooms by id; each is created by its first connection and dropped with its last
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    static final String DEFAULT_ROOM = "main";
+    // Sent before the name (after any COMPRESS) to join a room other than DEFAULT_ROOM
+    private static final String ROOM_REQUEST = "ROOM ";
+    // Chat lines are "<name>: <message>", so a name starting with one of these would let its
+    // owner's messages pass for protocol lines such as a spoofed PRESENCE or MEMBERS
+    private static final List<String> RESERVED_NAME_PREFIXES = List.of(
+            "SUBMIT_NAME", "NAME_ACCEPTED", "COMPRESS", "ROOM", "PING", "PONG", "ROSTER", "MEMBERS", "PRESENCE",
+            "MULTICAST", "RESEND", "RESENT");
+    // Commands from joined clients (/PONG, /ROSTER, /RESEND) start with this, so no chat line is
+    // taken for one; a chat line that itself starts with it is sent with the prefix doubled
+    private static final String COMMAND_PREFIX = "/";
+    // Joins and leaves are announced in one PRESENCE digest per interval instead of a broadcast each
+    private static final long PRESENCE_DIGEST_MILLIS = 2_000;
+    // A digest blocks on any member with a full send buffer, so each room's runs on its own
+    // pooled thread instead of the shared scheduler (see Presence.scheduleDigest)
+    private static final ExecutorService digests = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "server-presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Thread.startVirtualThread, looked up reflectively so the server still runs on JDKs before 21
+    private static Method virtualThreadStarter;
+
+    // Per-connection inbound limits; a client over either limit is not read from until it is back under
+    private static final double MESSAGES_PER_SECOND = 5;
+    private static final double MESSAGE_BURST = 10;
+    private static final double BYTES_PER_SECOND = 4096;
+    private static final double BYTE_BURST = 16384;
+    // Longer lines end the connection instead of being buffered and broadcast
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    // A silent client is sent PING after HEARTBEAT_INTERVAL_MILLIS and dropped after IDLE_TIMEOUT_MILLIS
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 15_000;
+    private static final long IDLE_TIMEOUT_MILLIS = 45_000;
+    // Before NAME_ACCEPTED nothing is pinged, and a person may still be typing a name in a dialog
+    private static final long NAME_TIMEOUT_MILLIS = 300_000;
+    private static final TimerWheel timers = new TimerWheel(500, 512);
+    // A PING to a peer with a full send buffer blocks until it is reaped, so each one gets its
+    // own pooled thread and a peer whose previous PING is still stuck is skipped
+    private static final ExecutorService heartbeats = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "server-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final int STATS_INTERVAL_SECONDS = 30;
+    private static final AtomicLong throttleEvents = new AtomicLong();
+    private static final AtomicLong throttledMillis = new AtomicLong();
+    private static final AtomicLong reapedConnections = new AtomicLong();
+
+    // Sent instead of a name to switch the connection to deflate streams before anything else is exchanged
+    private static final String COMPRESS_REQUEST = "COMPRESS deflate";
+    private static final AtomicLong compressedMessages = new AtomicLong();
+    private static final AtomicLong compressionBytesIn = new AtomicLong();
+    private static final AtomicLong compressionBytesOut = new AtomicLong();
+    private static final AtomicLong compressionNanos = new AtomicLong();
+
+    // Sent before the name (after any COMPRESS) to receive broadcasts from the multicast group instead of over TCP
+    private static final String MULTICAST_REQUEST = "MULTICAST";
+    private static Multicast multicast;
 
     public static void main(String[] args) {
-        System.out.println("Chat Server is running...");
+        if (Arrays.asList(args).contains("--virtual-threads")) {
+            try {
+                virtualThreadStarter = Thread.class.getMethod("startVirtualThread", Runnable.class);
+            } catch (NoSuchMethodException e) {
+                System.out.println("Virtual threads need JDK 21+, using platform threads.");
+            }
+        }
+
+        int multicastArg = Arrays.asList(args).indexOf("--multicast");
+        if (multicastArg >= 0 && multicastArg + 1 < args.length) {
+            // e.g. --multicast 239.255.42.99:8890
+            String[] address = args[multicastArg + 1].split(":");
+            try {
+                multicast = new Multicast(new InetSocketAddress(InetAddress.getByName(address[0]), Integer.parseInt(address[1])));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Multicast disabled, bad group " + args[multicastArg + 1] + ": " + e.getMessage());
+            }
+        }
+
+        if (Arrays.asList(args).contains("--websocket")) {
+            WebSocketGateway.start(WebSocketGateway.PORT);
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "server-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(Server::logStats,
+                STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(() -> rooms.values().forEach(room -> room.presence.scheduleDigest()),
+                PRESENCE_DIGEST_MILLIS, PRESENCE_DIGEST_MILLIS, TimeUnit.MILLISECONDS);
+
+        System.out.println("Chat Server is running" + (virtualThreadStarter != null ? " on virtual threads..." : "..."));
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             while (true) {
-                new ClientHandler(serverSocket.accept()).start();
+                startHandler(new ClientHandler(serverSocket.accept()));
             }
         } catch (IOException e) {
             System.out.println("Error in the server: " + e.getMessage());
         }
     }
 
-    private static class ClientHandler extends Thread {
-        private Socket socket;
-        private PrintWriter out;
+    static void startHandler(Runnable handler) {
+        if (virtualThreadStarter != null) {
+            try {
+                virtualThreadStarter.invoke(null, handler);
+                return;
+            } catch (ReflectiveOperationException e) {
+                // e.g. JDK 19/20 without --enable-preview
+                System.out.println("Virtual threads unavailable, using platform threads: " + e);
+                virtualThreadStarter = null;
+            }
+        }
+        new Thread(handler).start();
+    }
+
+    static boolean isReservedName(String name) {
+        return RESERVED_NAME_PREFIXES.stream().anyMatch(name::startsWith);
+    }
+
+    // Keeps ids to characters that are safe in protocol lines and URLs
+    static String roomId(String requested) {
+        String id = requested == null ? "" : requested.replaceAll("[^A-Za-z0-9_-]", "");
+        if (id.length() > 64) id = id.substring(0, 64);
+        return id.isEmpty() ? DEFAULT_ROOM : id;
+    }
+
+    private static Room enterRoom(String id) {
+        return rooms.compute(id, (key, room) -> {
+            if (room == null) room = new Room(key);
+            room.connections++;
+            return room;
+        });
+    }
+
+    private static void leaveRoom(Room room) {
+        rooms.computeIfPresent(room.id, (key, current) -> --current.connections == 0 ? null : current);
+    }
+
+    // One chat room: the TCP writers and presence of its members and, with --multicast, its
+    // sequence numbers and recent lines
+    private static class Room {
+        final String id;
+        // Concurrent set so joins, leaves and broadcasts never take a monitor
+        // (a monitor would pin a virtual thread to its carrier while writing)
+        final Set<PrintWriter> writers = ConcurrentHashMap.newKeySet();
+        final Presence presence = new Presence(this);
+        final AtomicLong sequence = new AtomicLong();
+        final AtomicReferenceArray<String> history = multicast != null ? new AtomicReferenceArray<>(Multicast.HISTORY) : null;
+        // Only changed inside the rooms map's compute for this id
+        int connections;
+
+        Room(String id) {
+            this.id = id;
+        }
+
+        // Multicast clients are not in writers, so each of them is reached exactly once
+        void broadcast(String message) {
+            if (multicast != null) {
+                multicast.publish(this, message);
+            }
+            for (PrintWriter writer : writers) {
+                writer.println(message);
+            }
+        }
+    }
+
+    // Online names with their connection counts, plus each name's net change since the last
+    // digest. A change is recorded inside the roster's per-name compute, so changes for one
+    // name cannot be reordered, and a leave followed by a join (or the reverse) cancels out.
+    private static class Presence {
+        private final Room room;
+        private final Map<String, Integer> online = new ConcurrentHashMap<>();
+        private final Map<String, Boolean> changes = new ConcurrentHashMap<>();
+        private final AtomicBoolean digestInFlight = new AtomicBoolean();
+
+        Presence(Room room) {
+            this.room = room;
+        }
+
+        void join(String name) {
+            online.compute(name, (n, count) -> {
+                if (count != null) return count + 1;
+                changes.merge(n, Boolean.TRUE, (pending, joined) -> null);
+                return 1;
+            });
+        }
+
+        void leave(String name) {
+            online.computeIfPresent(name, (n, count) -> {
+                if (count > 1) return count - 1;
+                changes.merge(n, Boolean.FALSE, (pending, left) -> null);
+                return null;
+            });
+        }
+
+        String roster() {
+            return String.join(",", online.keySet());
+        }
+
+        // A room whose previous digest is still stuck on a slow member is skipped; its
+        // changes stay queued and go out in the next digest that runs
+        void scheduleDigest() {
+            if (!digestInFlight.compareAndSet(false, true)) return;
+            digests.execute(() -> {
+                try {
+                    broadcastDigest();
+                } finally {
+                    digestInFlight.set(false);
+                }
+            });
+        }
+
+        // Sends e.g. "PRESENCE +alice,+bob,-carol"; clients derive "2 joined, 1 left" from it
+        private void broadcastDigest() {
+            StringJoiner delta = new StringJoiner(",", "PRESENCE ", "");
+            for (String name : changes.keySet()) {
+                Boolean joined = changes.remove(name);
+                if (joined != null) {
+                    delta.add((joined ? "+" : "-") + name);
+                }
+            }
+            if (delta.length() > "PRESENCE ".length()) {
+                room.broadcast(delta.toString());
+            }
+        }
+    }
+
+    // Sends each broadcast once to a multicast group instead of once per TCP client, so
+    // egress per message does not grow with the room. Datagrams are "<session> <room> <seq> <line>"
+    // in UTF-8, numbered per room; each room keeps its latest HISTORY lines so receivers
+    // can fill gaps over TCP.
+    private static class Multicast {
+        static final int HISTORY = 1024;
+        // Random per server run and only told to clients over TCP, so receivers can drop datagrams
+        // from other servers on the group and blind injection by other hosts. It is not a secret
+        // from anyone who can sniff the group itself.
+        private final String session = Long.toHexString(new SecureRandom().nextLong());
+        private final MulticastSocket socket;
+        private final InetSocketAddress group;
+        private final AtomicInteger receivers = new AtomicInteger();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong resent = new AtomicLong();
+
+        Multicast(InetSocketAddress group) throws IOException {
+            this.group = group;
+            this.socket = new MulticastSocket();
+            // e.g. -Dchat.multicast.if=lo to keep traffic on loopback
+            String networkInterface = System.getProperty("chat.multicast.if");
+            if (networkInterface != null) {
+                socket.setNetworkInterface(NetworkInterface.getByName(networkInterface));
+            }
+        }
+
+        String announcement() {
+            return "MULTICAST " + group.getAddress().getHostAddress() + " " + group.getPort() + " " + session;
+        }
+
+        void publish(Room room, String line) {
+            long seq = room.sequence.incrementAndGet();
+            String entry = seq + " " + line;
+            room.history.set((int) (seq % HISTORY), entry);
+            byte[] data = (session + " " + room.id + " " + entry).getBytes(StandardCharsets.UTF_8);
+            try {
+                socket.send(new DatagramPacket(data, data.length, group));
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                // Receivers see the gap and fetch the line with /RESEND
+                System.out.println("Error sending multicast: " + e.getMessage());
+            }
+        }
+
+        // The "RESENT <seq> <line>" answers to "/RESEND from to" for lines still in history
+        List<String> history(Room room, long from, long to) {
+            List<String> lines = new ArrayList<>();
+            for (long seq = from; seq <= Math.min(to, room.sequence.get()); seq++) {
+                String entry = room.history.get((int) (seq % HISTORY));
+                if (entry != null && entry.startsWith(seq + " ")) {
+                    lines.add("RESENT " + entry);
+                }
+            }
+            return lines;
+        }
+    }
+
+    private static void logStats() {
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println("Stats: rooms=" + rooms.size()
+                + " clients=" + rooms.values().stream().mapToInt(room -> room.writers.size()).sum()
+                + " heapUsedMb=" + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)
+                + " threads=" + Thread.activeCount()
+                + " throttleEvents=" + throttleEvents.get()
+                + " throttledMs=" + throttledMillis.get()
+                + " reaped=" + reapedConnections.get()
+                + compressionStats()
+                + (multicast == null ? "" : " multicastClients=" + multicast.receivers.get()
+                        + " multicastSent=" + multicast.sent.get() + " resent=" + multicast.resent.get()));
+    }
+
+    private static String compressionStats() {
+        long messages = compressedMessages.get();
+        if (messages == 0) return "";
+        return " compressedMsgs=" + messages
+                + " bytesPerMsg=" + compressionBytesIn.get() / messages + "->" + compressionBytesOut.get() / messages
+                + " compressUsPerMsg=" + compressionNanos.get() / messages / 1000;
+    }
+
+    // Reads one line a byte at a time so nothing after it is consumed, which
+    // matters while the stream may still switch to compression
+    static String readLineUnbuffered(InputStream input, Charset charset) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (line.size() == MAX_LINE_LENGTH) {
+                throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+
+        String text = line.toString(charset);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    // Like BufferedReader.readLine, but stops at MAX_LINE_LENGTH characters instead of
+    // buffering an arbitrarily long line. On a compressed connection BufferedReader only
+    // inflates one buffer at a time, so a tiny deflate bomb cannot expand in memory either.
+    private static String readLimitedLine(BufferedReader in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = read(in, line.length() == 0)) != -1 && c != '\n') {
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Line longer than " + MAX_LINE_LENGTH + " characters");
+            }
+            line.append((char) c);
+        }
+        if (c == -1 && line.length() == 0) return null;
+
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') end--;
+        return line.substring(0, end);
+    }
+
+    // A compressed client quits by closing its socket without finishing the zlib stream, so
+    // InflaterInputStream reports EOFException where a plain connection would just end.
+    // Between lines that is an ordinary end of stream; inside a line it is still an error.
+    private static int read(BufferedReader in, boolean atLineStart) throws IOException {
+        try {
+            return in.read();
+        } catch (EOFException e) {
+            if (atLineStart) return -1;
+            throw e;
+        }
+    }
+
+    // Sync-flushes on every PrintWriter flush (one per message) so each line can be
+    // inflated as soon as it arrives, and records bandwidth and time per message.
+    // Callers hold the PrintWriter lock, so the plain field is safe.
+    private static class MeteredDeflaterOutputStream extends DeflaterOutputStream {
+        private long reportedBytesOut;
+
+        MeteredDeflaterOutputStream(OutputStream out) {
+            super(new BufferedOutputStream(out), true);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            super.write(b, off, len);
+            compressionNanos.addAndGet(System.nanoTime() - start);
+            compressionBytesIn.addAndGet(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            super.flush();
+            compressionNanos.addAndGet(System.nanoTime() - start);
+            compressedMessages.incrementAndGet();
+            compressionBytesOut.addAndGet(def.getBytesWritten() - reportedBytesOut);
+            reportedBytesOut = def.getBytesWritten();
+        }
+    }
+
+    // Hashed timer wheel: a single ticker thread serves every connection's timeout and
+    // scheduling is O(1), so there are no per-connection timers or sleeping threads
+    private static class TimerWheel {
+        private final long tickMillis;
+        // Monotonic, so wall-clock steps neither expire everything at once nor stall the ticker
+        private final long startNanos = System.nanoTime();
+        private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+        // Buckets and the tick counter are only touched by the ticker thread
+        private final List<List<Timeout>> buckets = new ArrayList<>();
+        private long tick;
+
+        private static class Timeout {
+            final Runnable task;
+            final long deadlineMillis;
+            long rounds;
+
+            Timeout(Runnable task, long deadlineMillis) {
+                this.task = task;
+                this.deadlineMillis = deadlineMillis;
+            }
+        }
+
+        TimerWheel(long tickMillis, int size) {
+            this.tickMillis = tickMillis;
+            for (int i = 0; i < size; i++) {
+                buckets.add(new ArrayList<>());
+            }
+            Thread ticker = new Thread(this::run, "server-timer-wheel");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+
+        // Tasks run on the ticker thread and must not block
+        void schedule(Runnable task, long delayMillis) {
+            pending.add(new Timeout(task, elapsedMillis() + delayMillis));
+        }
+
+        private long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        private void run() {
+            while (true) {
+                long sleep = (tick + 1) * tickMillis - elapsedMillis();
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                Timeout timeout;
+                while ((timeout = pending.poll()) != null) {
+                    long deadlineTick = Math.max(timeout.deadlineMillis / tickMillis, tick);
+                    timeout.rounds = (deadlineTick - tick) / buckets.size();
+                    buckets.get((int) (deadlineTick % buckets.size())).add(timeout);
+                }
+
+                Iterator<Timeout> due = buckets.get((int) (tick % buckets.size())).iterator();
+                while (due.hasNext()) {
+                    timeout = due.next();
+                    if (timeout.rounds-- > 0) continue;
+                    due.remove();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("Error in timer task: " + e.getMessage());
+                    }
+                }
+                tick++;
+            }
+        }
+    }
+
+    // Only ever touched by its connection's reader thread, so it needs no locking
+    private static class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(double tokensPerSecond, double capacity) {
+            this.tokensPerNano = tokensPerSecond / 1_000_000_000d;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        // Takes the full amount (going into debt if needed) and returns how long to wait, in nanos, to repay it
+        long take(double amount) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            tokens -= amount;
+            return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+    }
+
+    static class ClientHandler implements Runnable {
+        protected final Socket socket;
+        private volatile PrintWriter out;
         private BufferedReader in;
         private String name;
+        private volatile boolean joined;
+        private final AtomicBoolean pingInFlight = new AtomicBoolean();
+        private boolean viaMulticast;
+        // Requested room id, set by a ROOM line or by the WebSocket gateway from its URL
+        protected String requestedRoom = DEFAULT_ROOM;
+        private Room room;
+        private volatile long lastReadNanos = System.nanoTime();
+        private final TokenBucket messageBucket = new TokenBucket(MESSAGES_PER_SECOND, MESSAGE_BURST);
+        private final TokenBucket byteBucket = new TokenBucket(BYTES_PER_SECOND, BYTE_BURST);
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
         }
 
+        // Transport hooks for the WebSocket gateway; openInput is always called before openOutput
+        protected InputStream openInput() throws IOException {
+            return socket.getInputStream();
+        }
+
+        protected OutputStream openOutput() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        protected Charset charset() {
+            return Charset.defaultCharset();
+        }
+
         public void run() {
+            timers.schedule(this::checkIdle, HEARTBEAT_INTERVAL_MILLIS);
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                InputStream input = openInput();
+                OutputStream output = openOutput();
+                out = new PrintWriter(new OutputStreamWriter(output, charset()), true);
 
                 out.println("SUBMIT_NAME");
-                name = in.readLine();
+                name = readLineUnbuffered(input, charset());
+                if (COMPRESS_REQUEST.equals(name)) {
+                    out.println("COMPRESS_OK");
+                    // InflaterInputStream.available() always claims a byte is ready, which makes
+                    // InputStreamReader block for more input instead of returning the line it has
+                    input = new InflaterInputStream(input) {
+                        @Override
+                        public int available() {
+                            return 0;
+                        }
+                    };
+                    out = new PrintWriter(new OutputStreamWriter(new MeteredDeflaterOutputStream(output), charset()), true);
+                }
+                in = new BufferedReader(new InputStreamReader(input, charset()));
+                if (COMPRESS_REQUEST.equals(name)) {
+                    name = readLimitedLine(in);
+                }
+                while (name != null && (name.startsWith(ROOM_REQUEST) || MULTICAST_REQUEST.equals(name))) {
+                    throttle(name);
+                    if (name.startsWith(ROOM_REQUEST)) {
+                        requestedRoom = name.substring(ROOM_REQUEST.length());
+                    } else if (multicast != null) {
+                        out.println(multicast.announcement());
+                        viaMulticast = true;
+                    } else {
+                        out.println("MULTICAST_UNAVAILABLE");
+                    }
+                    name = readLimitedLine(in);
+                }
+                // Commas separate names in MEMBERS and PRESENCE lines
+                if (name != null) name = name.replace(",", "");
+                // Asked again without repeating the options; the client already has their replies
+                while (name != null && isReservedName(name)) {
+                    throttle(name);
+                    out.println("SUBMIT_NAME");
+                    name = readLimitedLine(in);
+                    if (name != null) name = name.replace(",", "");
+                }
+                lastReadNanos = System.nanoTime();
 
                 if (name == null || name.isEmpty()) return;
 
-                synchronized (clientWriters) {
-                    clientWriters.add(out);
+                room = enterRoom(roomId(requestedRoom));
+                if (viaMulticast) {
+                    multicast.receivers.incrementAndGet();
+                } else {
+                    room.writers.add(out);
                 }
+                joined = true;
 
                 out.println("NAME_ACCEPTED " + name);
-                broadcast(name + " has joined the chat.");
+                if (viaMulticast) {
+                    // The client shows this room's multicast lines from here on and asks for any it misses
+                    out.println("MULTICAST_FROM " + room.id + " " + (room.sequence.get() + 1));
+                }
+                room.presence.join(name);
+                // Taken after registering, so every later change reaches this client in a digest
+                out.println("MEMBERS " + room.presence.roster());
 
                 String message;
-                while ((message = in.readLine()) != null) {
+                while ((message = readLimitedLine(in)) != null) {
+                    lastReadNanos = System.nanoTime();
+                    throttle(message);
+                    if (message.startsWith(COMMAND_PREFIX + COMMAND_PREFIX)) {
+                        message = message.substring(COMMAND_PREFIX.length());
+                    } else if (message.startsWith(COMMAND_PREFIX)) {
+                        command(message.substring(COMMAND_PREFIX.length()));
+                        continue;
+                    }
                     if (!message.isEmpty()) {
-                        broadcast(name + ": " + message);
+                        room.broadcast(name + ": " + message);
                     }
                 }
             } catch (IOException e) {
                 System.out.println("Error handling client: " + e.getMessage());
             } finally {
-                if (out != null) {
-                    synchronized (clientWriters) {
-                        clientWriters.remove(out);
-                    }
-                }
-                if (name != null) {
-                    broadcast(name + " has left the chat.");
+                if (joined) {
+                    room.writers.remove(out);
+                    room.presence.leave(name);
+                    if (viaMulticast) multicast.receivers.decrementAndGet();
+                    leaveRoom(room);
                 }
                 try {
+                    // Closing the writer first also releases a deflater; later writes by
+                    // a broadcast already in flight are then ignored by PrintWriter
+                    if (out != null) out.close();
                     socket.close();
                 } catch (IOException e) {
                     System.out.println("Error closing socket: " + e.getMessage());
@@ -68,11 +640,105 @@ import java.util.*;
             }
         }
 
-        private void broadcast(String message) {
-            synchronized (clientWriters) {
-                for (PrintWriter writer : clientWriters) {
-                    writer.println(message);
+        // Runs on the timer wheel: pings a quiet client, closes one that stayed silent too
+        // long (which fails its blocked readLine and runs the usual cleanup), else re-arms
+        private void checkIdle() {
+            if (socket.isClosed()) return;
+
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos);
+            long timeout = joined ? IDLE_TIMEOUT_MILLIS : NAME_TIMEOUT_MILLIS;
+            if (idle >= timeout) {
+                reapedConnections.incrementAndGet();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing socket: " + e.getMessage());
+                }
+                return;
+            }
+
+            long next = HEARTBEAT_INTERVAL_MILLIS - idle;
+            if (next <= 0) {
+                // Only after NAME_ACCEPTED, so a PING is never mistaken for the name reply.
+                // Multicast clients also get the room's latest sequence number, so a lost final
+                // datagram is noticed once the room goes quiet instead of never.
+                if (joined && pingInFlight.compareAndSet(false, true)) {
+                    PrintWriter writer = out;
+                    heartbeats.execute(() -> {
+                        try {
+                            writer.println(viaMulticast ? "PING " + room.sequence.get() : "PING");
+                        } finally {
+                            pingInFlight.set(false);
+                        }
+                    });
                 }
+                next = Math.min(HEARTBEAT_INTERVAL_MILLIS, timeout - idle);
+            }
+            timers.schedule(this::checkIdle, next);
+        }
+
+        // Names are matched case-insensitively so people can type e.g. /roster
+        private void command(String command) throws IOException {
+            String[] parts = command.split(" ", 2);
+            String verb = parts[0].toUpperCase(Locale.ROOT);
+            if (verb.equals("PONG")) {
+                return;
+            }
+            if (verb.equals("ROSTER")) {
+                out.println("MEMBERS " + room.presence.roster());
+            } else if (verb.equals("RESEND") && viaMulticast && parts.length == 2) {
+                resend(parts[1]);
+            } else {
+                out.println("Unknown command " + COMMAND_PREFIX + parts[0]
+                        + " (start the line with " + COMMAND_PREFIX + COMMAND_PREFIX + " to send it as chat)");
+            }
+        }
+
+        // A one-line request could otherwise pull HISTORY lines of up to MAX_LINE_LENGTH each, so
+        // ranges wider than the history are refused and every resent line is charged to this
+        // client's byte bucket as if it had sent it (the request itself already paid a message)
+        private void resend(String range) throws IOException {
+            String[] bounds = range.split(" ");
+            long from;
+            long to;
+            try {
+                from = Long.parseLong(bounds[0]);
+                to = Long.parseLong(bounds[bounds.length - 1]);
+            } catch (NumberFormatException e) {
+                out.println("Invalid /RESEND range: " + range);
+                return;
+            }
+            if (bounds.length != 2 || from < 1 || to < from || to - from >= Multicast.HISTORY) {
+                out.println("Invalid /RESEND range: " + range + " (at most " + Multicast.HISTORY + " lines)");
+                return;
+            }
+
+            for (String line : multicast.history(room, from, to)) {
+                throttle(0, line.getBytes(charset()).length + 1);
+                out.println(line);
+                multicast.resent.incrementAndGet();
+            }
+        }
+
+        // Charges one message and the line's encoded size plus its newline; on compressed
+        // connections that is the inflated size, which is what gets broadcast
+        private void throttle(String line) throws IOException {
+            throttle(1, line.getBytes(charset()).length + 1);
+        }
+
+        // Sleeping here stops reads from the socket, so a flooding client fills its
+        // TCP window and is slowed down by the kernel instead of by everyone else
+        private void throttle(int messages, int bytes) throws IOException {
+            long waitNanos = Math.max(messageBucket.take(messages), byteBucket.take(bytes));
+            if (waitNanos == 0) return;
+
+            throttleEvents.incrementAndGet();
+            throttledMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
             }
         }
     }
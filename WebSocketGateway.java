@@ -0,0 +1,252 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lets browsers join the Server chat over WebSocket (RFC 6455) using only the JDK;
+// the room comes from the URL, e.g. ws://host:8080/chat?room=abc.
+// Each text frame carries one line of the normal chat protocol, so a browser session
+// is just a Server.ClientHandler with a different transport underneath.
+class WebSocketGateway {
+    static final int PORT = 8080;
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    static void start(int port) {
+        Thread acceptor = new Thread(() -> {
+            try (ServerSocket serverSocket = new ServerSocket(port)) {
+                System.out.println("WebSocket gateway is running on port " + port + "...");
+                while (true) {
+                    Server.startHandler(new WebSocketHandler(serverSocket.accept()));
+                }
+            } catch (IOException e) {
+                System.out.println("Error in the WebSocket gateway: " + e.getMessage());
+            }
+        }, "websocket-gateway");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static class WebSocketHandler extends Server.ClientHandler {
+        // Guards frame writes: chat lines come from broadcasting threads, pongs and closes from the reader
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private OutputStream rawOut;
+
+        WebSocketHandler(Socket socket) {
+            super(socket);
+        }
+
+        @Override
+        protected InputStream openInput() throws IOException {
+            InputStream rawIn = new BufferedInputStream(socket.getInputStream());
+            rawOut = socket.getOutputStream();
+            handshake(rawIn);
+            // Frames are written whole, so Nagle would only hold small chat lines back
+            socket.setTcpNoDelay(true);
+            return new FrameInputStream(rawIn);
+        }
+
+        @Override
+        protected OutputStream openOutput() {
+            return new FrameOutputStream();
+        }
+
+        @Override
+        protected Charset charset() {
+            return StandardCharsets.UTF_8;
+        }
+
+        private void handshake(InputStream rawIn) throws IOException {
+            // e.g. "GET /chat?room=abc HTTP/1.1"; the room id is sanitized by the server on join
+            String requestLine = Server.readLineUnbuffered(rawIn, StandardCharsets.ISO_8859_1);
+            if (requestLine != null) {
+                String[] target = requestLine.split(" ");
+                int query = target.length > 1 ? target[1].indexOf('?') : -1;
+                if (query >= 0) {
+                    for (String parameter : target[1].substring(query + 1).split("&")) {
+                        if (parameter.startsWith("room=")) {
+                            requestedRoom = URLDecoder.decode(parameter.substring(5), StandardCharsets.UTF_8);
+                        }
+                    }
+                }
+            }
+
+            String key = null;
+            String header;
+            while ((header = Server.readLineUnbuffered(rawIn, StandardCharsets.ISO_8859_1)) != null
+                    && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                    key = header.substring(colon + 1).trim();
+                }
+            }
+
+            if (key == null) {
+                rawOut.write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                throw new IOException("Not a WebSocket upgrade request");
+            }
+
+            String accept;
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-1")
+                        .digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+                accept = Base64.getEncoder().encodeToString(digest);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            rawOut.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            rawOut.flush();
+        }
+
+        // Header and payload go out in one write, so the payload never waits behind a
+        // separately sent header for the peer's delayed ACK
+        private void writeFrame(int opcode, byte[] payload, int length) throws IOException {
+            int header = length < 126 ? 2 : length < 65536 ? 4 : 10;
+            byte[] frame = new byte[header + length];
+            frame[0] = (byte) (0x80 | opcode);
+            if (length < 126) {
+                frame[1] = (byte) length;
+            } else if (length < 65536) {
+                frame[1] = 126;
+                frame[2] = (byte) (length >>> 8);
+                frame[3] = (byte) length;
+            } else {
+                frame[1] = 127;
+                for (int i = 0; i < 8; i++) {
+                    frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+                }
+            }
+            System.arraycopy(payload, 0, frame, header, length);
+
+            writeLock.lock();
+            try {
+                rawOut.write(frame);
+                rawOut.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Decodes client frames into the chat's line stream: each message's payload followed by '\n'.
+        // Control frames are answered here; a close frame ends the stream.
+        private class FrameInputStream extends InputStream {
+            private final DataInputStream frames;
+            private final byte[] mask = new byte[4];
+            private long remaining;
+            private long position;
+            private boolean finalFragment = true;
+            private boolean lineEndPending;
+
+            FrameInputStream(InputStream rawIn) {
+                this.frames = new DataInputStream(rawIn);
+            }
+
+            @Override
+            public int read() throws IOException {
+                while (remaining == 0) {
+                    if (lineEndPending) {
+                        lineEndPending = false;
+                        return '\n';
+                    }
+                    if (!nextDataFrame()) return -1;
+                }
+                int b = frames.readUnsignedByte() ^ (mask[(int) (position++ & 3)] & 0xFF);
+                if (--remaining == 0 && finalFragment) {
+                    lineEndPending = true;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                int c = read();
+                if (c == -1) return -1;
+                b[off] = (byte) c;
+                int n = 1;
+                // Stop at the end of the current frame so a reader is never blocked waiting for the next one
+                while (n < len && (remaining > 0 || lineEndPending)) {
+                    b[off + n++] = (byte) read();
+                }
+                return n;
+            }
+
+            // Reads headers until a text, binary or continuation frame with payload arrives; false on close
+            private boolean nextDataFrame() throws IOException {
+                while (true) {
+                    int first = frames.read();
+                    if (first == -1) return false;
+                    int second = frames.readUnsignedByte();
+                    int opcode = first & 0x0F;
+                    long length = second & 0x7F;
+                    if (length == 126) {
+                        length = frames.readUnsignedShort();
+                    } else if (length == 127) {
+                        length = frames.readLong();
+                    }
+                    if ((second & 0x80) == 0 || length < 0 || length > MAX_FRAME_LENGTH) {
+                        throw new IOException("Invalid WebSocket frame");
+                    }
+                    frames.readFully(mask);
+
+                    if (opcode >= 0x8) {
+                        byte[] payload = new byte[(int) length];
+                        frames.readFully(payload);
+                        for (int i = 0; i < payload.length; i++) {
+                            payload[i] ^= mask[i & 3];
+                        }
+                        if (opcode == 0x8) {
+                            writeFrame(0x8, payload, Math.min(payload.length, 2));
+                            return false;
+                        }
+                        if (opcode == 0x9) {
+                            writeFrame(0xA, payload, payload.length);
+                        }
+                        continue;
+                    }
+
+                    finalFragment = (first & 0x80) != 0;
+                    remaining = length;
+                    position = 0;
+                    if (length > 0) return true;
+                    if (finalFragment) {
+                        lineEndPending = true;
+                        return true;
+                    }
+                }
+            }
+        }
+
+        // Collects what PrintWriter writes and sends each completed line as one text frame
+        private class FrameOutputStream extends OutputStream {
+            private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+            @Override
+            public void write(int b) throws IOException {
+                if (b != '\n') {
+                    line.write(b);
+                    return;
+                }
+                byte[] payload = line.toByteArray();
+                int length = payload.length;
+                if (length > 0 && payload[length - 1] == '\r') length--;
+                line.reset();
+                writeFrame(0x1, payload, length);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                for (int i = off; i < off + len; i++) {
+                    write(b[i]);
+                }
+            }
+        }
+    }
+}
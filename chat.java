@@ -3,10 +3,15 @@ import javax.swing.border.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.time.LocalDateTime;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatApplication extends JFrame {
     private String currentUserId;
@@ -19,6 +24,9 @@ public class ChatApplication extends JFrame {
     private static final String USERS_FILE = "users_data.txt";
     private static final String CHATS_FILE = "chats_data.txt";
 
+    // Ids for messages and groups; run instances with different -Dchat.node values to keep them unique
+    private static final IdGenerator idGenerator = new IdGenerator(Integer.getInteger("chat.node", 0));
+
     // UI Components
     private JPanel mainPanel;
     private JPanel sidePanel;
@@ -111,39 +119,59 @@ public class ChatApplication extends JFrame {
         }
 
         try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.startsWith("CHAT:")) {
-                    String[] parts = line.substring(5).split("\\|");
-                    if (parts.length >= 3) {
-                        String chatId = parts[0];
-                        String chatName = parts[1];
-                        boolean isGroup = Boolean.parseBoolean(parts[2]);
-
-                        Chat chat = new Chat(chatId, chatName, isGroup);
-
-                        // Read members
-                        line = br.readLine();
-                        if (line != null && line.startsWith("MEMBERS:")) {
-                            String[] members = line.substring(8).split(",");
-                            chat.members.addAll(Arrays.asList(members));
-                        }
+            // Each section below stops on the first line it does not own, which is then handled here
+            String line = br.readLine();
+            int legacyCount = 0;
+            while (line != null) {
+                if (!line.startsWith("CHAT:")) {
+                    line = br.readLine();
+                    continue;
+                }
+
+                String[] parts = line.substring(5).split("\\|");
+                line = br.readLine();
+                if (parts.length < 3) continue;
 
-                        // Read messages
-                        line = br.readLine();
-                        while (line != null && line.startsWith("MSG:")) {
-                            String[] msgParts = line.substring(4).split("\\|", 3);
+                String chatId = parts[0];
+                String chatName = parts[1];
+                boolean isGroup = Boolean.parseBoolean(parts[2]);
+
+                Chat chat = new Chat(chatId, chatName, isGroup);
+
+                // Read members
+                if (line != null && line.startsWith("MEMBERS:")) {
+                    String[] members = line.substring(8).split(",");
+                    chat.members.addAll(Arrays.asList(members));
+                    line = br.readLine();
+                }
+
+                // Read messages
+                List<String[]> legacyMessages = new ArrayList<>();
+                while (line != null && (line.startsWith("MESSAGE:") || line.startsWith("MSG:"))) {
+                    if (line.startsWith("MESSAGE:")) {
+                        String[] msgParts = line.substring(8).split("\\|", 3);
+                        try {
+                            long id = Long.parseLong(msgParts[0]);
                             if (msgParts.length == 3) {
-                                Message msg = new Message(msgParts[0], msgParts[2]);
-                                msg.timestamp = msgParts[1];
-                                chat.messages.add(msg);
+                                idGenerator.observe(id);
+                                chat.messages.add(new Message(id, msgParts[1], msgParts[2]));
                             }
-                            line = br.readLine();
+                        } catch (NumberFormatException e) {
+                            System.err.println("Skipping message with bad id: " + msgParts[0]);
+                        }
+                    } else {
+                        String[] msgParts = line.substring(4).split("\\|", 3);
+                        if (msgParts.length == 3) {
+                            legacyMessages.add(msgParts);
                         }
-
-                        chats.put(chatId, chat);
                     }
+                    line = br.readLine();
                 }
+                addLegacyMessages(chat, legacyMessages, file.lastModified(), legacyCount);
+                legacyCount += legacyMessages.size();
+                chat.messages.sort(Comparator.comparingLong(msg -> msg.id));
+
+                chats.put(chatId, chat);
             }
             System.out.println("Loaded " + chats.size() + " chats from file");
         } catch (IOException e) {
@@ -151,6 +179,36 @@ public class ChatApplication extends JFrame {
         }
     }
 
+    // The older "MSG:sender|HH:mm|content" lines have no date. The newest one is placed at or
+    // before the file's modification time and each earlier one on the latest day that keeps it
+    // at or before the message after it. Ids are built from those times, counting up from
+    // firstIndex within the millisecond so the stored order survives, and saving them as
+    // MESSAGE lines then keeps the original times.
+    private void addLegacyMessages(Chat chat, List<String[]> legacyMessages, long savedAtMillis, int firstIndex) {
+        DateTimeFormatter clockFormat = DateTimeFormatter.ofPattern("HH:mm");
+        ZonedDateTime bound = Instant.ofEpochMilli(savedAtMillis).atZone(ZoneId.systemDefault());
+        long[] times = new long[legacyMessages.size()];
+        for (int i = legacyMessages.size() - 1; i >= 0; i--) {
+            ZonedDateTime time = bound;
+            try {
+                time = bound.with(LocalTime.parse(legacyMessages.get(i)[1], clockFormat));
+                if (time.isAfter(bound)) {
+                    time = time.minusDays(1);
+                }
+            } catch (DateTimeParseException e) {
+                System.err.println("Legacy message with bad time, using the next one's: " + legacyMessages.get(i)[1]);
+            }
+            times[i] = time.toInstant().toEpochMilli();
+            bound = time;
+        }
+
+        for (int i = 0; i < legacyMessages.size(); i++) {
+            String[] msgParts = legacyMessages.get(i);
+            long id = IdGenerator.firstIdAt(times[i]) + firstIndex + i;
+            chat.messages.add(new Message(id, msgParts[0], msgParts[2]));
+        }
+    }
+
     private void saveChatsToFile() {
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(CHATS_FILE))) {
             for (Chat chat : chats.values()) {
@@ -161,7 +219,7 @@ public class ChatApplication extends JFrame {
                 bw.newLine();
 
                 for (Message msg : chat.messages) {
-                    bw.write("MSG:" + msg.senderId + "|" + msg.timestamp + "|" + msg.content);
+                    bw.write("MESSAGE:" + msg.id + "|" + msg.senderId + "|" + msg.content);
                     bw.newLine();
                 }
             }
@@ -473,7 +531,7 @@ public class ChatApplication extends JFrame {
             return;
         }
 
-        String chatId = "group_" + System.currentTimeMillis();
+        String chatId = "group_" + idGenerator.nextId();
         Chat chat = new Chat(chatId, groupName, true);
         chat.members.addAll(validIds);
         chats.put(chatId, chat);
@@ -586,21 +644,106 @@ public class ChatApplication extends JFrame {
             this.members = new ArrayList<>();
             this.messages = new ArrayList<>();
         }
+
+        // Messages sent in [fromMillis, toMillis), found by binary search since ids sort by time
+        List<Message> messagesBetween(long fromMillis, long toMillis) {
+            int from = firstIndexAtOrAfter(IdGenerator.firstIdAt(fromMillis));
+            int to = firstIndexAtOrAfter(IdGenerator.firstIdAt(toMillis));
+            return new ArrayList<>(messages.subList(from, Math.max(from, to)));
+        }
+
+        // Up to limit messages immediately before the message with the given id, oldest first
+        List<Message> pageBefore(long id, int limit) {
+            int end = firstIndexAtOrAfter(id);
+            return new ArrayList<>(messages.subList(Math.max(0, end - limit), end));
+        }
+
+        private int firstIndexAtOrAfter(long id) {
+            int low = 0;
+            int high = messages.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (messages.get(mid).id < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
     }
 
     class Message {
+        long id;
         String senderId;
         String content;
         String timestamp;
 
         Message(String senderId, String content) {
+            this(idGenerator.nextId(), senderId, content);
+        }
+
+        Message(long id, String senderId, String content) {
+            this.id = id;
             this.senderId = senderId;
             this.content = content;
-            this.timestamp = LocalDateTime.now()
+            this.timestamp = Instant.ofEpochMilli(IdGenerator.timeOf(id))
+                    .atZone(ZoneId.systemDefault())
                     .format(DateTimeFormatter.ofPattern("HH:mm"));
         }
     }
 
+    // Time-ordered 64-bit ids: 41 bits of milliseconds since EPOCH, 10 bits of node and a
+    // 12-bit sequence. The last (millis, sequence) pair is one AtomicLong advanced by CAS,
+    // so no locking is needed. When a millisecond's sequence runs out, or the clock steps
+    // back, the counter carries into the next millisecond instead of waiting.
+    static class IdGenerator {
+        static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+        private static final int NODE_BITS = 10;
+        private static final int SEQUENCE_BITS = 12;
+        private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+        private static final long MAX_MILLIS = (1L << (63 - NODE_BITS - SEQUENCE_BITS)) - 1;
+
+        private final long node;
+        private final AtomicLong last = new AtomicLong();
+
+        IdGenerator(int node) {
+            this.node = node & ((1L << NODE_BITS) - 1);
+        }
+
+        long nextId() {
+            while (true) {
+                long previous = last.get();
+                long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+                long next = Math.max(now, previous + 1);
+                if (last.compareAndSet(previous, next)) {
+                    return (next >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)
+                            | node << SEQUENCE_BITS
+                            | next & SEQUENCE_MASK;
+                }
+            }
+        }
+
+        // Never hand out an id at or below one already stored, even if the clock is behind it
+        void observe(long id) {
+            long millis = id >>> (NODE_BITS + SEQUENCE_BITS);
+            last.accumulateAndGet(millis << SEQUENCE_BITS | id & SEQUENCE_MASK, Math::max);
+        }
+
+        static long timeOf(long id) {
+            return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+        }
+
+        // Smallest id any node can generate at the given epoch millis. Times before EPOCH map to 0
+        // and times past the 41-bit range to Long.MAX_VALUE, so open-ended queries such as
+        // messagesBetween(t, Long.MAX_VALUE) work instead of overflowing the shift.
+        static long firstIdAt(long epochMillis) {
+            if (epochMillis <= EPOCH) return 0;
+            if (epochMillis - EPOCH > MAX_MILLIS) return Long.MAX_VALUE;
+            return (epochMillis - EPOCH) << (NODE_BITS + SEQUENCE_BITS);
+        }
+    }
+
     public static void main(String[] args) {
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -9,9 +9,6 @@ if(!uid){
 let token = null;
 let client;
 
-let rtmClient;
-let channel;
-
 const queryString = window.location.search
 const urlParams = new URLSearchParams(queryString)
 let roomId = urlParams.get('room')
@@ -32,25 +29,13 @@ let localScreenTracks;
 let sharingScreen = false;
 
 let joinRoomInit = async () => {
-    rtmClient = await AgoraRTM.createInstance(APP_ID)
-    await rtmClient.login({uid,token})
-
-    await rtmClient.addOrUpdateLocalUserAttributes({'name':displayName})
-
-    channel = await rtmClient.createChannel(roomId)
-    await channel.join()
-
-    channel.on('MemberJoined', handleMemberJoined)
-    channel.on('MemberLeft', handleMemberLeft)
-    channel.on('ChannelMessage', handleChannelMessage)
-
-    getMembers()
-    addBotMessageToDom(`Welcome to the room ${displayName}! 👋`)
+    joinChat()
 
     client = AgoraRTC.createClient({mode:'rtc', codec:'vp8'})
     await client.join(APP_ID, roomId, token, uid)
 
     client.on('user-published', handleUserPublished)
+    client.on('user-unpublished', handleUserUnpublished)
     client.on('user-left', handleUserLeft)
 }
 
@@ -123,6 +108,28 @@ let handleUserPublished = async (user, mediaType) => {
 
 }
 
+// Replaces the 'user_left' message that used to go over RTM when someone stopped streaming.
+// A screen share swap also unpublishes the camera, but handleUserPublished recreates the container.
+let handleUserUnpublished = async (user, mediaType) => {
+    if(mediaType !== 'video') return
+
+    let item = document.getElementById(`user-container-${user.uid}`)
+    if(item){
+        item.remove()
+    }
+
+    if(userIdInDisplayFrame === `user-container-${user.uid}`){
+        displayFrame.style.display = null
+
+        let videoFrames = document.getElementsByClassName('video__container')
+
+        for(let i = 0; videoFrames.length > i; i++){
+            videoFrames[i].style.height = '300px'
+            videoFrames[i].style.width = '300px'
+        }
+    }
+}
+
 let handleUserLeft = async (user) => {
     delete remoteUsers[user.uid]
     let item = document.getElementById(`user-container-${user.uid}`)
@@ -241,8 +248,6 @@ let leaveStream = async (e) => {
             videoFrames[i].style.width = '300px'
         }
     }
-
-    channel.sendMessage({text:JSON.stringify({'type':'user_left', 'uid':uid})})
 }
 
 
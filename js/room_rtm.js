@@ -1,92 +1,171 @@
-let handleMemberJoined = async (MemberId) => {
-    console.log('A new member has joined the room:', MemberId)
-    addMemberToDom(MemberId)
-
-    let members = await channel.getMembers()
-    updateMemberTotal(members)
+const CHAT_URL = `ws://${window.location.hostname || 'localhost'}:8080/chat`
+const RECONNECT_DELAY_MS = 3000
+
+let socket
+let leaving = false
+let nameSubmitted = false
+let memberElements = new Map()
+
+let joinChat = () => {
+    nameSubmitted = false
+    socket = new WebSocket(`${CHAT_URL}?room=${encodeURIComponent(roomId)}`)
+    socket.addEventListener('message', handleSocketMessage)
+    socket.addEventListener('close', handleSocketClose)
+}
 
-    let {name} = await rtmClient.getUserAttributesByKeys(MemberId, ['name'])
-    addBotMessageToDom(`Welcome to the room ${name}! 👋`)
+// The server drops idle or restarted sessions; rejoin so later sends are not silently lost
+let handleSocketClose = () => {
+    if(leaving) return
+    setMembers([])
+    addBotMessageToDom('Chat connection lost, reconnecting...')
+    setTimeout(joinChat, RECONNECT_DELAY_MS)
 }
 
-let addMemberToDom = async (MemberId) => {
-    let {name} = await rtmClient.getUserAttributesByKeys(MemberId, ['name'])
+// The gateway speaks the plain chat server protocol, one line per frame
+let handleSocketMessage = (event) => {
+    let line = event.data
 
-    let membersWrapper = document.getElementById('member__list')
-    let memberItem = `<div class="member__wrapper" id="member__${MemberId}__wrapper">
-                        <span class="green__icon"></span>
-                        <p class="member_name">${name}</p>
-                    </div>`
+    if(line === 'SUBMIT_NAME'){
+        // Asked again only when the name is reserved by the chat protocol
+        if(nameSubmitted){
+            addBotMessageToDom(`The name ${escapeHtml(displayName)} cannot be used in the chat, please rejoin with another name.`)
+            leaveChannel()
+            return
+        }
+        nameSubmitted = true
+        socket.send(displayName)
+        return
+    }
 
-    membersWrapper.insertAdjacentHTML('beforeend', memberItem)
-}
+    if(line === 'PING'){
+        socket.send('/PONG')
+        return
+    }
 
-let updateMemberTotal = async (members) => {
-    let total = document.getElementById('members__count')
-    total.innerText = members.length
-}
- 
-let handleMemberLeft = async (MemberId) => {
-    removeMemberFromDom(MemberId)
+    if(line.startsWith('NAME_ACCEPTED ')){
+        // Listed before the digest announcing us arrives, so we are not welcomed twice
+        addMemberToDom(line.substring(14))
+        updateMemberTotal()
+        addBotMessageToDom(`Welcome to the room ${displayName}! 👋`)
+        return
+    }
 
-    let members = await channel.getMembers()
-    updateMemberTotal(members)
-}
+    if(line.startsWith('MEMBERS ')){
+        setMembers(line.substring(8).split(',').filter(name => name))
+        return
+    }
+
+    if(line.startsWith('PRESENCE ')){
+        handlePresence(line.substring(9).split(','))
+        return
+    }
 
-let removeMemberFromDom = async (MemberId) => {
-    let memberWrapper = document.getElementById(`member__${MemberId}__wrapper`)
-    let name = memberWrapper.getElementsByClassName('member_name')[0].textContent
-    addBotMessageToDom(`${name} has left the room.`)
-        
-    memberWrapper.remove()
+    let separator = line.indexOf(': ')
+    if(separator > 0){
+        addMessageToDom(line.substring(0, separator), line.substring(separator + 2))
+    }else{
+        addBotMessageToDom(escapeHtml(line))
+    }
 }
 
-let getMembers = async () => {
-    let members = await channel.getMembers()
-    updateMemberTotal(members)
-    for (let i = 0; members.length > i; i++){
-        addMemberToDom(members[i])
+let setMembers = (names) => {
+    for(let name of [...memberElements.keys()]){
+        if(!names.includes(name)){
+            removeMemberFromDom(name)
+        }
     }
+    for(let name of names){
+        addMemberToDom(name)
+    }
+    updateMemberTotal()
 }
 
-let handleChannelMessage = async (messageData, MemberId) => {
-    console.log('A new message was received')
-    let data = JSON.parse(messageData.text)
+// Batched membership delta, e.g. ['+alice', '+bob', '-carol']
+let handlePresence = (changes) => {
+    let joined = changes.filter(change => change.startsWith('+')).map(change => change.substring(1))
+    let left = changes.filter(change => change.startsWith('-')).map(change => change.substring(1))
 
-    if(data.type === 'chat'){
-        addMessageToDom(data.displayName, data.message)
+    // Greet individually in small rooms; summarize a storm in one line
+    if(joined.length + left.length <= 3){
+        joined.forEach(handleMemberJoined)
+        left.forEach(handleMemberLeft)
+        return
     }
 
-    if(data.type === 'user_left'){
-        document.getElementById(`user-container-${data.uid}`).remove()
+    joined.forEach(addMemberToDom)
+    left.forEach(name => {
+        if(memberElements.has(name)) removeMemberFromDom(name)
+    })
+    updateMemberTotal()
+    addBotMessageToDom(`${joined.length} joined, ${left.length} left.`)
+}
+
+let handleMemberJoined = (name) => {
+    if(memberElements.has(name)) return
+    console.log('A new member has joined the room:', name)
+    addMemberToDom(name)
+    updateMemberTotal()
+    addBotMessageToDom(`Welcome to the room ${escapeHtml(name)}! 👋`)
+}
 
-        if(userIdInDisplayFrame === `user-container-${uid}`){
-            displayFrame.style.display = null
-    
-            for(let i = 0; videoFrames.length > i; i++){
-                videoFrames[i].style.height = '300px'
-                videoFrames[i].style.width = '300px'
-            }
-        }
-    }
+let addMemberToDom = (name) => {
+    if(memberElements.has(name)) return
+
+    let membersWrapper = document.getElementById('member__list')
+    let memberItem = `<div class="member__wrapper">
+                        <span class="green__icon"></span>
+                        <p class="member_name">${escapeHtml(name)}</p>
+                    </div>`
+
+    membersWrapper.insertAdjacentHTML('beforeend', memberItem)
+    memberElements.set(name, membersWrapper.lastElementChild)
+}
+
+let updateMemberTotal = () => {
+    let total = document.getElementById('members__count')
+    total.innerText = memberElements.size
+}
+
+let handleMemberLeft = (name) => {
+    if(!memberElements.has(name)) return
+    removeMemberFromDom(name)
+    updateMemberTotal()
+    addBotMessageToDom(`${escapeHtml(name)} has left the room.`)
+}
+
+let removeMemberFromDom = (name) => {
+    memberElements.get(name).remove()
+    memberElements.delete(name)
 }
 
 let sendMessage = async (e) => {
     e.preventDefault()
 
     let message = e.target.message.value
-    channel.sendMessage({text:JSON.stringify({'type':'chat', 'message':message, 'displayName':displayName})})
-    addMessageToDom(displayName, message)
+    // The server echoes our own message back, so it is not added to the DOM here
+    if(!message) return
+    if(!socket || socket.readyState !== WebSocket.OPEN){
+        addBotMessageToDom('Not connected to the chat yet, please try again in a moment.')
+        return
+    }
+    // A leading slash marks a command to the server, so a literal one is doubled
+    socket.send(message.startsWith('/') ? `/${message}` : message)
     e.target.reset()
 }
 
+let escapeHtml = (text) => {
+    let div = document.createElement('div')
+    div.innerText = text
+    return div.innerHTML
+}
+
 let addMessageToDom = (name, message) => {
     let messagesWrapper = document.getElementById('messages')
 
     let newMessage = `<div class="message__wrapper">
                         <div class="message__body">
-                            <strong class="message__author">${name}</strong>
-                            <p class="message__text">${message}</p>
+                            <strong class="message__author">${escapeHtml(name)}</strong>
+                            <p class="message__text">${escapeHtml(message)}</p>
                         </div>
                     </div>`
 
@@ -117,11 +196,13 @@ let addBotMessageToDom = (botMessage) => {
     }
 }
 
-let leaveChannel = async () => {
-    await channel.leave()
-    await rtmClient.logout()
+let leaveChannel = () => {
+    leaving = true
+    if(socket){
+        socket.close()
+    }
 }
 
 window.addEventListener('beforeunload', leaveChannel)
 let messageForm = document.getElementById('message__form')
-messageForm.addEventListener('submit', sendMessage)
\ No newline at end of file
+messageForm.addEventListener('submit', sendMessage)